@@ -1,6 +1,9 @@
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.file.Paths;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.logging.Level;
@@ -18,6 +21,7 @@ public class ChatServer {
     private final ServerSocket serverSocket;
     private final ExecutorService threadPool;
     private final ServerManager serverManager;
+    private final TrafficRecorder trafficRecorder;
 
     public ChatServer(int port, int debugLevel) throws IOException {
         this.port = port;
@@ -25,6 +29,7 @@ public class ChatServer {
         this.serverSocket = new ServerSocket(port);
         this.threadPool = Executors.newFixedThreadPool(THREAD_LIMIT);
         this.serverManager = new ServerManager();
+        this.trafficRecorder = new TrafficRecorder();
 
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             try {
@@ -41,13 +46,15 @@ public class ChatServer {
         while (true) {
             Socket clientSocket = serverSocket.accept();
             logger.log(Level.INFO, "Client connected: {0}", clientSocket.getRemoteSocketAddress());
-            ClientHandler clientHandler = new ClientHandler(clientSocket, serverManager, debugLevel);
+            ClientHandler clientHandler = new ClientHandler(clientSocket, serverManager, trafficRecorder, debugLevel);
             threadPool.submit(clientHandler);
         }
     }
 
     private void shutdown() throws IOException {
         logger.log(Level.INFO, "Shutting down server...");
+        // Stop first so the shutdown notices are not recorded as part of client sessions.
+        trafficRecorder.stop();
         serverManager.broadcastMessage("Server shutting down.");
         serverManager.closeAllConnections();
         threadPool.shutdown();
@@ -59,9 +66,52 @@ public class ChatServer {
         logger.log(Level.INFO, "Server stopped.");
     }
 
+    public TrafficRecorder getTrafficRecorder() {
+        return trafficRecorder;
+    }
+
+    // Operator console: "record start <file>", "record stop", "record status".
+    private void listenForConsoleCommands() {
+        try (BufferedReader console = new BufferedReader(new InputStreamReader(System.in))) {
+            String line;
+            while ((line = console.readLine()) != null) {
+                String[] parts = line.trim().split(" ", 3);
+                if (!parts[0].equals("record") || parts.length < 2) {
+                    System.out.println("Usage: record start <file> | record stop | record status");
+                    continue;
+                }
+                switch (parts[1]) {
+                    case "start":
+                        if (parts.length < 3) {
+                            System.out.println("Usage: record start <file>");
+                        } else {
+                            try {
+                                trafficRecorder.start(Paths.get(parts[2]));
+                            } catch (IOException e) {
+                                System.out.println("Could not start recording: " + e.getMessage());
+                            }
+                        }
+                        break;
+                    case "stop":
+                        trafficRecorder.stop();
+                        break;
+                    case "status":
+                        System.out.println(trafficRecorder.isRecording() ? "Recording" : "Not recording");
+                        break;
+                    default:
+                        System.out.println("Usage: record start <file> | record stop | record status");
+                        break;
+                }
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Error reading from console", e);
+        }
+    }
+
     public static void main(String[] args) throws IOException {
         int port = DEFAULT_PORT;
         int debugLevel = DEFAULT_DEBUG_LEVEL;
+        String recordFile = null;
 
         if (args.length > 0) {
             for (int i = 0; i < args.length; i++) {
@@ -69,11 +119,19 @@ public class ChatServer {
                     port = Integer.parseInt(args[i + 1]);
                 } else if (args[i].equals("-d")) {
                     debugLevel = Integer.parseInt(args[i + 1]);
+                } else if (args[i].equals("-r")) {
+                    recordFile = args[i + 1];
                 }
             }
         }
 
         ChatServer server = new ChatServer(port, debugLevel);
+        if (recordFile != null) {
+            server.getTrafficRecorder().start(Paths.get(recordFile));
+        }
+        Thread consoleThread = new Thread(server::listenForConsoleCommands, "server-console");
+        consoleThread.setDaemon(true);
+        consoleThread.start();
         server.start();
     }
 }
\ No newline at end of file
@@ -16,27 +16,52 @@ public class ClientHandler implements Runnable {
 
     private final Socket clientSocket;
     private final ServerManager serverManager;
+    private final TrafficRecorder trafficRecorder;
+    private final int connectionId;
     private final int debugLevel;
     private String nickname;
     private final Set<Channel> channels;
+    private volatile boolean closed;
+    private volatile Thread handlerThread;
 
     private BufferedReader reader;
     private PrintWriter writer;
 
-    public ClientHandler(Socket clientSocket, ServerManager serverManager, int debugLevel) throws IOException {
+    public ClientHandler(Socket clientSocket, ServerManager serverManager, TrafficRecorder trafficRecorder, int debugLevel) throws IOException {
         this.clientSocket = clientSocket;
         this.serverManager = serverManager;
+        this.trafficRecorder = trafficRecorder;
+        this.connectionId = trafficRecorder.newConnectionId();
         this.debugLevel = debugLevel;
         this.channels = new HashSet<>();
         this.reader = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-        this.writer = new PrintWriter(clientSocket.getOutputStream(), true);
+        this.writer = new PrintWriter(clientSocket.getOutputStream(), true) {
+            @Override
+            public void println(String line) {
+                synchronized (lock) {
+                    super.println(line);
+                    if (closed) {
+                        return;
+                    }
+                    if (Thread.currentThread() == handlerThread) {
+                        trafficRecorder.recordReply(connectionId, line);
+                    } else {
+                        trafficRecorder.recordOutput(connectionId, line);
+                    }
+                }
+            }
+        };
+        trafficRecorder.recordConnect(connectionId);
     }
 
     @Override
     public void run() {
+        handlerThread = Thread.currentThread();
         try {
             handleHandshake();
-            processCommands();
+            if (nickname != null) {
+                processCommands();
+            }
         } catch (IOException e) {
             logger.log(Level.WARNING, "Error communicating with client", e);
         } finally {
@@ -47,7 +72,10 @@ public class ClientHandler implements Runnable {
     private void handleHandshake() throws IOException {
         writer.println("Welcome to the chat server!");
         while (true) {
-            String command = reader.readLine();
+            String command = readLine();
+            if (command == null) {
+                return;
+            }
             if (command.startsWith("/nick ")) {
                 String newNickname = command.substring(6).trim();
                 if (serverManager.addUser(this, newNickname)) {
@@ -65,13 +93,13 @@ public class ClientHandler implements Runnable {
 
     private void processCommands() throws IOException {
         while (true) {
-            String input = reader.readLine();
+            String input = readLine();
+            if (input == null) {
+                break;
+            }
             String[] parts = input.split(" ", 2);
             String command = parts[0];
             String argument = parts.length > 1 ? parts[1] : "";
-            if (command == null) {
-                break;
-            }
 
             if (debugLevel > 0) {
                 logger.log(Level.INFO, "Client " + nickname + ": " + command);
@@ -109,6 +137,14 @@ public class ClientHandler implements Runnable {
         }
     }
 
+    private String readLine() throws IOException {
+        String line = reader.readLine();
+        if (line != null) {
+            trafficRecorder.recordInput(connectionId, line);
+        }
+        return line;
+    }
+
     private void listChannels() throws IOException {
         List<String> channelList = serverManager.getChannelList();
         writer.println("Available channels:");
@@ -178,6 +214,7 @@ public class ClientHandler implements Runnable {
     }
 
     private void closeConnection() {
+        closed = true;
         try {
             reader.close();
             writer.close();
@@ -185,6 +222,7 @@ public class ClientHandler implements Runnable {
         } catch (IOException e) {
             logger.log(Level.WARNING, "Error closing client connection", e);
         }
+        trafficRecorder.recordDisconnect(connectionId);
     }
 
     public String getNickname() {
@@ -0,0 +1,279 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Captures per-connection protocol traffic into a compact binary trace.
+// Record layout after the header: type byte, varint connection id,
+// varint nanoseconds since the previous record, and for INPUT/OUTPUT/REPLY
+// a varint length followed by the UTF-8 line. REPLY is output written by the
+// connection's own handler thread, i.e. a response to that client's command.
+public class TrafficRecorder {
+
+    private static final Logger logger = Logger.getLogger(TrafficRecorder.class.getName());
+
+    static final int MAGIC = 0x49524354;
+    static final int VERSION = 2;
+
+    static final byte CONNECT = 1;
+    static final byte INPUT = 2;
+    static final byte OUTPUT = 3;
+    static final byte DISCONNECT = 4;
+    static final byte REPLY = 5;
+
+    private static final int QUEUE_CAPACITY = 65536;
+    private static final int MAX_LINE_BYTES = 1 << 24;
+    private static final long CLOSE_TIMEOUT_MS = 5000;
+
+    private final AtomicInteger nextConnectionId;
+    private volatile Session session;
+
+    public TrafficRecorder() {
+        this.nextConnectionId = new AtomicInteger();
+    }
+
+    public synchronized void start(Path file) throws IOException {
+        if (session != null) {
+            stop();
+        }
+        session = new Session(file);
+        logger.log(Level.INFO, "Recording traffic to {0}", file);
+    }
+
+    public synchronized void stop() {
+        Session current = session;
+        if (current == null) {
+            return;
+        }
+        session = null;
+        current.close();
+        logger.log(Level.INFO, "Stopped recording traffic to {0} ({1} events, {2} dropped)",
+                new Object[] { current.file, current.written, current.dropped.get() });
+    }
+
+    public boolean isRecording() {
+        Session current = session;
+        return current != null && !current.failed;
+    }
+
+    public int newConnectionId() {
+        return nextConnectionId.incrementAndGet();
+    }
+
+    public void recordConnect(int connectionId) {
+        record(CONNECT, connectionId, null);
+    }
+
+    public void recordInput(int connectionId, String line) {
+        record(INPUT, connectionId, line);
+    }
+
+    public void recordOutput(int connectionId, String line) {
+        record(OUTPUT, connectionId, line);
+    }
+
+    public void recordReply(int connectionId, String line) {
+        record(REPLY, connectionId, line);
+    }
+
+    public void recordDisconnect(int connectionId) {
+        record(DISCONNECT, connectionId, null);
+    }
+
+    private void record(byte type, int connectionId, String line) {
+        Session current = session;
+        if (current != null && !current.failed) {
+            current.offer(new Event(type, connectionId, System.nanoTime(), line));
+        }
+    }
+
+    public static List<Event> readTrace(Path file) throws IOException {
+        List<Event> events = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a traffic trace: " + file);
+            }
+            int version = in.readUnsignedShort();
+            if (version != VERSION) {
+                throw new IOException("Unsupported trace version " + version + ": " + file);
+            }
+            long time = 0;
+            while (true) {
+                int type = in.read();
+                if (type < 0) {
+                    break;
+                }
+                int connectionId = (int) readVarLong(in);
+                time += readVarLong(in);
+                String line = null;
+                if (type == INPUT || type == OUTPUT || type == REPLY) {
+                    long length = readVarLong(in);
+                    if (length < 0 || length > MAX_LINE_BYTES) {
+                        throw new IOException("Invalid line length " + length + " in trace: " + file);
+                    }
+                    byte[] bytes = new byte[(int) length];
+                    in.readFully(bytes);
+                    line = new String(bytes, StandardCharsets.UTF_8);
+                }
+                events.add(new Event((byte) type, connectionId, time, line));
+            }
+        } catch (EOFException e) {
+            logger.log(Level.WARNING, "Trace {0} is truncated, using events read so far", file);
+        }
+        return events;
+    }
+
+    private static void writeVarLong(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarLong(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in trace");
+    }
+
+    public static class Event {
+
+        private final byte type;
+        private final int connectionId;
+        private final long nanos;
+        private final String line;
+
+        public Event(byte type, int connectionId, long nanos, String line) {
+            this.type = type;
+            this.connectionId = connectionId;
+            this.nanos = nanos;
+            this.line = line;
+        }
+
+        public byte getType() {
+            return type;
+        }
+
+        public int getConnectionId() {
+            return connectionId;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        public String getLine() {
+            return line;
+        }
+    }
+
+    // Handler threads only enqueue; a single writer thread does the encoding and I/O.
+    // When the queue is full events are dropped and counted rather than stalling clients.
+    private static class Session implements Runnable {
+
+        private static final Event END = new Event((byte) 0, 0, 0, null);
+
+        private final Path file;
+        private final DataOutputStream out;
+        private final BlockingQueue<Event> queue;
+        private final AtomicLong dropped;
+        private final Thread writerThread;
+        private volatile long written;
+        private volatile boolean failed;
+
+        Session(Path file) throws IOException {
+            this.file = file;
+            this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)));
+            this.queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+            this.dropped = new AtomicLong();
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            this.writerThread = new Thread(this, "traffic-recorder");
+            writerThread.setDaemon(true);
+            writerThread.start();
+        }
+
+        void offer(Event event) {
+            if (!queue.offer(event)) {
+                dropped.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void run() {
+            long previous = System.nanoTime();
+            try {
+                while (true) {
+                    Event event = queue.poll();
+                    if (event == null) {
+                        // Queue drained: push what we have to disk so a crash loses little.
+                        out.flush();
+                        event = queue.take();
+                    }
+                    if (event == END) {
+                        break;
+                    }
+                    out.write(event.type);
+                    writeVarLong(out, event.connectionId);
+                    writeVarLong(out, Math.max(0, event.nanos - previous));
+                    previous = Math.max(previous, event.nanos);
+                    if (event.line != null) {
+                        byte[] bytes = event.line.getBytes(StandardCharsets.UTF_8);
+                        writeVarLong(out, bytes.length);
+                        out.write(bytes);
+                    }
+                    written++;
+                }
+            } catch (IOException e) {
+                failed = true;
+                queue.clear();
+                logger.log(Level.WARNING, "Error writing traffic trace, recording stopped", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Error closing traffic trace", e);
+                }
+            }
+        }
+
+        void close() {
+            try {
+                if (writerThread.isAlive() && !queue.offer(END, CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    writerThread.interrupt();
+                }
+                writerThread.join(CLOSE_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
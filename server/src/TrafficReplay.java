@@ -0,0 +1,426 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Replays a trace written by TrafficRecorder against a ChatServer, one socket per
+// recorded connection, and reports throughput, per-command latency and output divergence.
+public class TrafficReplay {
+
+    private static final Logger logger = Logger.getLogger(TrafficReplay.class.getName());
+    private static final String DEFAULT_HOST = "localhost";
+    private static final int DEFAULT_PORT = 6667;
+    private static final long REPLY_TIMEOUT_MS = 1000;
+
+    private final String host;
+    private final int port;
+    private final double speed;
+    private final Map<Integer, Script> scripts;
+    private final int skippedConnections;
+
+    public TrafficReplay(String host, int port, double speed, List<TrafficRecorder.Event> events) {
+        this.host = host;
+        this.port = port;
+        this.speed = speed;
+        this.scripts = new TreeMap<>();
+        int skipped = 0;
+        Map<Integer, Boolean> seen = new HashMap<>();
+        for (TrafficRecorder.Event event : events) {
+            int id = event.getConnectionId();
+            if (event.getType() == TrafficRecorder.CONNECT) {
+                scripts.put(id, new Script(id, event.getNanos()));
+            }
+            Script script = scripts.get(id);
+            if (script == null) {
+                // Connection was already open when recording started, so its handshake is missing.
+                if (seen.put(id, Boolean.TRUE) == null) {
+                    skipped++;
+                }
+                continue;
+            }
+            if (script.disconnectNanos >= 0) {
+                continue;
+            }
+            switch (event.getType()) {
+                case TrafficRecorder.INPUT:
+                    script.inputs.add(new Input(event.getNanos(), event.getLine()));
+                    break;
+                case TrafficRecorder.OUTPUT:
+                    script.recordedOutput.add(event.getLine());
+                    break;
+                case TrafficRecorder.REPLY:
+                    script.recordedOutput.add(event.getLine());
+                    script.recordedReplies.add(event.getLine());
+                    // The first line the handler wrote back after a command is taken as its reply.
+                    Input last = script.inputs.isEmpty() ? null : script.inputs.get(script.inputs.size() - 1);
+                    if (last != null && last.expectedReply == null) {
+                        last.expectedReply = event.getLine();
+                    }
+                    break;
+                case TrafficRecorder.DISCONNECT:
+                    script.disconnectNanos = event.getNanos();
+                    break;
+                default:
+                    break;
+            }
+        }
+        this.skippedConnections = skipped;
+    }
+
+    public void run() throws InterruptedException {
+        long traceStart = Long.MAX_VALUE;
+        for (Script script : scripts.values()) {
+            traceStart = Math.min(traceStart, script.connectNanos);
+        }
+        long replayStart = System.nanoTime();
+
+        List<Thread> threads = new ArrayList<>();
+        for (Script script : scripts.values()) {
+            long origin = traceStart;
+            Thread thread = new Thread(() -> script.replay(origin, replayStart), "replay-" + script.connectionId);
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - replayStart;
+
+        report(elapsed);
+    }
+
+    private void sleepUntil(long origin, long replayStart, long traceNanos) throws InterruptedException {
+        if (speed <= 0) {
+            return;
+        }
+        long target = replayStart + (long) ((traceNanos - origin) / speed);
+        long remaining = target - System.nanoTime();
+        if (remaining > 0) {
+            Thread.sleep(remaining / 1_000_000, (int) (remaining % 1_000_000));
+        }
+    }
+
+    private void report(long elapsedNanos) {
+        long commands = 0;
+        long received = 0;
+        int failed = 0;
+        Map<String, List<Long>> latencies = new TreeMap<>();
+        Map<String, Integer> noReply = new TreeMap<>();
+        Map<String, Integer> missing = new TreeMap<>();
+        for (Script script : scripts.values()) {
+            commands += script.sent.size();
+            received += script.replayedOutput.size();
+            if (script.error != null) {
+                failed++;
+            }
+            script.collectLatencies(latencies, noReply, missing);
+        }
+        double seconds = elapsedNanos / 1e9;
+
+        System.out.println(String.format("Replayed %d connections (%d skipped, %d failed) in %.3f s at %s",
+                scripts.size(), skippedConnections, failed, seconds, speed <= 0 ? "max speed" : speed + "x"));
+        System.out.println(String.format("Throughput: %.1f commands/s sent, %.1f lines/s received",
+                commands / seconds, received / seconds));
+
+        System.out.println("Latency to recorded reply (ms); noreply = none was recorded, missing = never arrived:");
+        System.out.println(String.format("  %-12s %8s %8s %8s %8s %8s %8s %8s",
+                "command", "count", "mean", "p50", "p99", "max", "noreply", "missing"));
+        Set<String> names = new TreeSet<>(latencies.keySet());
+        names.addAll(noReply.keySet());
+        names.addAll(missing.keySet());
+        for (String name : names) {
+            List<Long> values = latencies.getOrDefault(name, Collections.emptyList());
+            int unanswered = noReply.getOrDefault(name, 0);
+            int lost = missing.getOrDefault(name, 0);
+            if (values.isEmpty()) {
+                System.out.println(String.format("  %-12s %8d %8s %8s %8s %8s %8d %8d",
+                        name, 0, "-", "-", "-", "-", unanswered, lost));
+                continue;
+            }
+            Collections.sort(values);
+            long total = 0;
+            for (long value : values) {
+                total += value;
+            }
+            System.out.println(String.format("  %-12s %8d %8.3f %8.3f %8.3f %8.3f %8d %8d", name, values.size(),
+                    total / 1e6 / values.size(), percentile(values, 0.50) / 1e6,
+                    percentile(values, 0.99) / 1e6, values.get(values.size() - 1) / 1e6, unanswered, lost));
+        }
+
+        int divergent = 0;
+        if (speed <= 0) {
+            System.out.println("Max speed does not preserve ordering between connections; only each connection's own replies are compared.");
+        }
+        for (Script script : scripts.values()) {
+            String difference = script.describeDivergence();
+            if (difference != null) {
+                if (divergent == 0) {
+                    System.out.println("Output divergence:");
+                }
+                divergent++;
+                System.out.println(String.format("  connection %d: %s", script.connectionId, difference));
+            }
+        }
+        System.out.println(String.format("Divergent connections: %d of %d", divergent, scripts.size()));
+    }
+
+    private static long percentile(List<Long> sorted, double fraction) {
+        int index = (int) Math.ceil(fraction * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(index, sorted.size() - 1)));
+    }
+
+    private static String commandName(String line) {
+        if (line.startsWith("/")) {
+            return line.split(" ", 2)[0];
+        }
+        return "<message>";
+    }
+
+    private class Script {
+
+        private final int connectionId;
+        private final long connectNanos;
+        private final List<Input> inputs;
+        private final List<String> recordedOutput;
+        private final List<String> recordedReplies;
+        private final List<Sent> sent;
+        private final List<Line> replayedOutput;
+        private long disconnectNanos;
+        private Exception error;
+
+        Script(int connectionId, long connectNanos) {
+            this.connectionId = connectionId;
+            this.connectNanos = connectNanos;
+            this.inputs = new ArrayList<>();
+            this.recordedOutput = new ArrayList<>();
+            this.recordedReplies = new ArrayList<>();
+            this.sent = new ArrayList<>();
+            this.replayedOutput = Collections.synchronizedList(new ArrayList<>());
+            this.disconnectNanos = -1;
+        }
+
+        void replay(long origin, long replayStart) {
+            try {
+                sleepUntil(origin, replayStart, connectNanos);
+                try (Socket socket = new Socket(host, port)) {
+                    // Without this, back-to-back commands stall on Nagle/delayed ACK and skew latency.
+                    socket.setTcpNoDelay(true);
+                    BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                    PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
+                    Thread readerThread = new Thread(() -> readOutput(reader), "replay-reader-" + connectionId);
+                    readerThread.start();
+
+                    for (Input input : inputs) {
+                        sleepUntil(origin, replayStart, input.nanos);
+                        Sent command = new Sent(input, System.nanoTime(), replayedOutput.size());
+                        sent.add(command);
+                        writer.println(input.text);
+                        if (speed <= 0 && input.expectedReply != null) {
+                            awaitReply(command);
+                        }
+                    }
+                    if (disconnectNanos >= 0) {
+                        sleepUntil(origin, replayStart, disconnectNanos);
+                    }
+                    // Half-close so the server sees end of input and flushes whatever it still owes us.
+                    socket.shutdownOutput();
+                    readerThread.join();
+                }
+            } catch (IOException | InterruptedException e) {
+                error = e;
+                logger.log(Level.WARNING, "Replay of connection " + connectionId + " failed", e);
+            }
+        }
+
+        private void readOutput(BufferedReader reader) {
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    synchronized (replayedOutput) {
+                        replayedOutput.add(new Line(System.nanoTime(), line));
+                        replayedOutput.notifyAll();
+                    }
+                }
+            } catch (IOException e) {
+                logger.log(Level.FINE, "Connection " + connectionId + " closed while reading", e);
+            }
+        }
+
+        // At max speed, pace the connection on the server's replies so every command can be measured.
+        private void awaitReply(Sent command) throws InterruptedException {
+            long deadline = System.nanoTime() + REPLY_TIMEOUT_MS * 1_000_000;
+            synchronized (replayedOutput) {
+                while (findReply(command) < 0) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return;
+                    }
+                    replayedOutput.wait(remaining / 1_000_000 + 1);
+                }
+            }
+        }
+
+        private int findReply(Sent command) {
+            synchronized (replayedOutput) {
+                for (int i = command.outputIndex; i < replayedOutput.size(); i++) {
+                    if (replayedOutput.get(i).text.equals(command.input.expectedReply)) {
+                        return i;
+                    }
+                }
+                return -1;
+            }
+        }
+
+        // A command's latency is the time until the first line its own handler wrote back in the
+        // recording shows up again; output caused by other connections never counts as a reply.
+        // Commands whose handler wrote nothing back (e.g. /pmsg to someone else) are counted,
+        // not measured.
+        void collectLatencies(Map<String, List<Long>> latencies, Map<String, Integer> noReply,
+                Map<String, Integer> missing) {
+            for (Sent command : sent) {
+                String name = commandName(command.input.text);
+                if (command.input.expectedReply == null) {
+                    noReply.merge(name, 1, Integer::sum);
+                    continue;
+                }
+                int reply = findReply(command);
+                if (reply < 0) {
+                    missing.merge(name, 1, Integer::sum);
+                } else {
+                    latencies.computeIfAbsent(name, k -> new ArrayList<>())
+                            .add(replayedOutput.get(reply).nanos - command.nanos);
+                }
+            }
+        }
+
+        String describeDivergence() {
+            if (speed <= 0) {
+                return describeReplyDivergence();
+            }
+            int common = Math.min(recordedOutput.size(), replayedOutput.size());
+            for (int i = 0; i < common; i++) {
+                String expected = recordedOutput.get(i);
+                String actual = replayedOutput.get(i).text;
+                if (!expected.equals(actual)) {
+                    return String.format("line %d expected \"%s\" but got \"%s\" (%d recorded, %d replayed)",
+                            i + 1, expected, actual, recordedOutput.size(), replayedOutput.size());
+                }
+            }
+            if (recordedOutput.size() != replayedOutput.size()) {
+                return String.format("%d lines recorded but %d replayed", recordedOutput.size(), replayedOutput.size());
+            }
+            return null;
+        }
+
+        // Each handler writes its own replies in order, so they must show up in that order among
+        // whatever the connection received, whatever the other connections were doing.
+        private String describeReplyDivergence() {
+            int next = 0;
+            for (String expected : recordedReplies) {
+                while (next < replayedOutput.size() && !replayedOutput.get(next).text.equals(expected)) {
+                    next++;
+                }
+                if (next == replayedOutput.size()) {
+                    return String.format("reply \"%s\" not received (%d replies recorded)",
+                            expected, recordedReplies.size());
+                }
+                next++;
+            }
+            return null;
+        }
+    }
+
+    private static class Input {
+
+        private final long nanos;
+        private final String text;
+        private String expectedReply;
+
+        Input(long nanos, String text) {
+            this.nanos = nanos;
+            this.text = text;
+        }
+    }
+
+    private static class Sent {
+
+        private final Input input;
+        private final long nanos;
+        private final int outputIndex;
+
+        Sent(Input input, long nanos, int outputIndex) {
+            this.input = input;
+            this.nanos = nanos;
+            this.outputIndex = outputIndex;
+        }
+    }
+
+    private static class Line {
+
+        private final long nanos;
+        private final String text;
+
+        Line(long nanos, String text) {
+            this.nanos = nanos;
+            this.text = text;
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String host = DEFAULT_HOST;
+        int port = DEFAULT_PORT;
+        double speed = 1.0;
+        String traceFile = null;
+        boolean local = false;
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-h")) {
+                host = args[++i];
+            } else if (args[i].equals("-p")) {
+                port = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-s")) {
+                String value = args[++i];
+                speed = value.equals("max") ? 0 : Double.parseDouble(value);
+            } else if (args[i].equals("-l")) {
+                local = true;
+            } else {
+                traceFile = args[i];
+            }
+        }
+
+        if (traceFile == null) {
+            System.err.println("Usage: java TrafficReplay [-h host] [-p port] [-s speed|max] [-l] <trace-file>");
+            System.exit(1);
+        }
+
+        if (local) {
+            ChatServer server = new ChatServer(port, 0);
+            Thread serverThread = new Thread(() -> {
+                try {
+                    server.start();
+                } catch (IOException e) {
+                    logger.log(Level.INFO, "Local server stopped", e);
+                }
+            }, "replay-server");
+            serverThread.setDaemon(true);
+            serverThread.start();
+            host = DEFAULT_HOST;
+        }
+
+        TrafficReplay replay = new TrafficReplay(host, port, speed, TrafficRecorder.readTrace(Paths.get(traceFile)));
+        replay.run();
+        System.exit(0);
+    }
+}